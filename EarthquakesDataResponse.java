@@ -0,0 +1,11 @@
+/**
+ * Parsed earthquake data along with where it came from.
+ * 
+ * @author ashekhar
+ * @param <T>
+ */
+class EarthquakesDataResponse<T> {
+	T data;
+	boolean isLastGood;		// true: USGS was unavailable, this is the last good data
+	long fetchedAt;			// epoch millis
+}
@@ -1,11 +1,17 @@
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+
 import java.util.Map;
+import java.util.Date;
 import java.util.Set;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.TreeMap;
+import java.util.TimeZone;
 import java.util.Comparator;
 import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -28,6 +34,80 @@ class EarthquakeDataNode {
 	String summaryWithLocation;
 }
 
+/**
+ * Predicates declared by the active report and its options. Evaluated in the ingest
+ * loop, cheapest and most selective first, so that features which can never appear
+ * in the report are skipped before the rest of their fields are read.
+ * 
+ * @author ashekhar
+ */
+class EarthquakeFilter {
+	String eventType	= "earthquake";
+	Float minMagnitude	= null;		// null: no lower bound (--minmag)
+	Set<String> states	= null;		// null: any US state/territory (lower case names)
+	Long startTime		= null;		// null: no lower bound (--from, epoch millis, inclusive)
+	Long endTime		= null;		// null: no upper bound (--to, epoch millis, exclusive)
+
+	// Number of events skipped at each stage
+	int skippedByType;
+	int skippedByState;
+	int skippedByMagnitude;
+	int skippedByTime;
+	int accepted;
+
+	boolean acceptsType(String type) {
+		
+		if (eventType == null || eventType.equals(type))
+			return true;
+		
+		skippedByType++;
+		return false;
+	}
+
+	boolean hasTimeRange() {
+		return startTime != null || endTime != null;
+	}
+
+	boolean acceptsTime(long time) {
+		
+		if ((startTime == null || time >= startTime) && (endTime == null || time < endTime))
+			return true;
+		
+		skippedByTime++;
+		return false;
+	}
+
+	/**
+	 * @param stateStr lower case state/territory name
+	 */
+	boolean acceptsState(String stateStr) {
+		
+		if (stateStr != null && (states == null || states.contains(stateStr)))
+			return true;
+		
+		skippedByState++;
+		return false;
+	}
+
+	/**
+	 * @param magnitude null if the magnitude is unknown ("?")
+	 */
+	boolean acceptsMagnitude(Float magnitude) {
+		
+		if (magnitude != null && (minMagnitude == null || magnitude >= minMagnitude))
+			return true;
+		
+		skippedByMagnitude++;
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "Events accepted: " + accepted + " (skipped by type: " + skippedByType + ", state: " + skippedByState
+				+ ", magnitude: " + skippedByMagnitude + ", time: " + skippedByTime + ")";
+	}
+}
+
 /**
  * Custom comparator to sort the earthquake data based on the magnitude
  * 
@@ -85,6 +165,9 @@ public class quakes {
 	final private static int TOP_STRONGEST_EARTHQUAKES_IN_STATE 	= 25;
 	final private static int TOP_STRONGEST_EARTHQUAKES_PER_STATE 	= 5;
 
+	final private static String FILTER_DATE_FORMAT 	= "yyyy-MM-dd";
+	final private static String FILTER_DATE_PATTERN 	= "\\d{4}-\\d{2}-\\d{2}";
+
 	private static HashSet<String> NamesOfTerritoriesAndStates 	= new HashSet<String>();
 	private static HashSet<String> CodesOfTerritoriesAndStates 	= new HashSet<String>();
 	private static Map<String, String> StateNames2Codes 		= new HashMap<String, String>();
@@ -146,6 +229,215 @@ public class quakes {
 			return stateStr;
 	}
 
+	/**
+	 * Resolve the state/territory part of a title to its lower case name.
+	 * title: M 0.5 - 9km NE of Aguanga, CA
+	 * 
+	 * @param title
+	 * @return stateStr or null if the event did not occur within USA
+	 */
+	private static String getStateFromTitle(String title) {
+		
+		/*
+		 * Invalid title: M 4.5 - Federated States of Micronesia region 
+		 * Proceed ONLY if there is a state component in the title.
+		 */
+		String[] titleParts = title.split(", ");
+		if (titleParts.length != 2)
+			return null;
+		
+		String stateStr = titleParts[1].toLowerCase();
+		
+		// Validate if the data is indeed in the USA
+		if (!isEarthquakeWithinUSA(stateStr))
+			return null;
+		
+		return convertStateCode2NameIfNeeded(stateStr).toLowerCase();
+	}
+
+	/**
+	 * Parse the magnitude from the title.
+	 * 
+	 * title: M ? - 6km W of Cobb, CA mag: null
+	 * 
+	 * Data did not seem to be clean. Hence opted to fetch
+	 * the magnitude from the title string.
+	 * 
+	 * @param title
+	 * @return magnitude or null if the mag value in title is ?
+	 */
+	private static Float getMagnitudeFromTitle(String title) {
+		
+		String magStr = title.split(" - ")[0].split(" ")[1];
+		
+		if (magStr.equals("?"))
+			return null;
+		
+		return Float.parseFloat(magStr);
+	}
+
+	/**
+	 * Parse the earthquake data (API response).
+	 * 
+	 * @param earthquakesData
+	 * @return mainJSONObj or null if the data is missing/invalid
+	 */
+	static JSONObject parseEarthquakesData(String earthquakesData) {
+		
+		if (earthquakesData == null || earthquakesData.isEmpty())
+			return null;
+		
+		try {
+			// Convert the string to a JSON object & parse
+			JSONObject mainJSONObj	= new JSONObject(earthquakesData);
+			JSONObject metadataObj	= mainJSONObj.getJSONObject("metadata");
+
+			// Verify the API status code
+			if (metadataObj.getInt("status") == 200 && mainJSONObj.has("features"))
+				return mainJSONObj;
+			
+			System.err.println("Error: Unexpected earthquake data status: " + metadataObj.getInt("status"));
+			
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		
+		return null;
+	}
+
+	/**
+	 * Parse a --minmag magnitude.
+	 * 
+	 * @param magStr
+	 * @return magnitude or null if the magnitude is invalid
+	 */
+	private static Float parseFilterMagnitude(String magStr) {
+		
+		Float magnitude = null;
+		
+		try {
+			magnitude = Float.parseFloat(magStr);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		
+		// "NaN" and "Infinity" parse, but are not magnitudes
+		if (magnitude.isNaN() || magnitude.isInfinite())
+			return null;
+		
+		return magnitude;
+	}
+
+	/**
+	 * Parse a --from/--to date (yyyy-MM-dd, UTC).
+	 * 
+	 * DateFormat.parse() ignores trailing text and accepts "2024-1-015" even when
+	 * not lenient. Hence the exact shape is checked first and the whole string must be used.
+	 * 
+	 * @param dateStr
+	 * @return epoch millis or null if the date is invalid
+	 */
+	private static Long parseFilterDate(String dateStr) {
+		
+		if (!dateStr.matches(FILTER_DATE_PATTERN))
+			return null;
+		
+		SimpleDateFormat dateFormat = new SimpleDateFormat(FILTER_DATE_FORMAT);
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		dateFormat.setLenient(false);
+		
+		ParsePosition position = new ParsePosition(0);
+		Date date = dateFormat.parse(dateStr, position);
+		
+		if (date == null || position.getIndex() != dateStr.length())
+			return null;
+		
+		return date.getTime();
+	}
+
+	/**
+	 * When the earthquake data is as of, for the report header.
+	 * The last good data is only as current as when USGS generated it.
+	 * 
+	 * @param earthquakesData
+	 * @return asOf
+	 */
+	static String getEarthquakesDataAsOf(EarthquakesDataResponse<JSONObject> earthquakesData) {
+		
+		if (!earthquakesData.isLastGood)
+			return quakesHelperMethods.getCurrentDataTime();
+		
+		long generated = earthquakesData.data.getJSONObject("metadata").optLong("generated", earthquakesData.fetchedAt);
+		
+		return quakesHelperMethods.convertLong2Time(generated) + ", last good data: USGS unavailable";
+	}
+
+	/**
+	 * Build the filter for the requested report and its options.
+	 * --minmag=<magnitude> --from=<yyyy-MM-dd> --to=<yyyy-MM-dd>
+	 * 
+	 * @param firstArg
+	 * @param args
+	 * @return filter
+	 */
+	private static EarthquakeFilter buildEarthquakeFilter(String firstArg, String[] args) {
+		
+		EarthquakeFilter filter = new EarthquakeFilter();
+		
+		// --top5 and --statestop5 need every earthquake in the USA
+		if (!firstArg.equalsIgnoreCase("top5") && !firstArg.equalsIgnoreCase("statestop5")) {
+			filter.states = new HashSet<String>();
+			filter.states.add(convertStateCode2NameIfNeeded(firstArg).toLowerCase());
+		}
+		
+		// The first argument is the report, the rest are options
+		for (int i = 1; i < args.length; i++) {
+			
+			String option	= args[i].toLowerCase();
+			String value	= args[i].substring(args[i].indexOf('=') + 1);
+			
+			if (option.startsWith("--minmag=")) {
+				
+				filter.minMagnitude = parseFilterMagnitude(value);
+				if (filter.minMagnitude == null) {
+					System.err.println("Error: Invalid magnitude \"" + value + "\" for --minmag.");
+					quakesHelperMethods.usage(quakes.class.getSimpleName(), args[i]);
+				}
+				
+			} else if (option.startsWith("--from=")) {
+				
+				filter.startTime = parseFilterDate(value);
+				if (filter.startTime == null) {
+					System.err.println("Error: Invalid date \"" + value + "\" for --from (expected " + FILTER_DATE_FORMAT + ").");
+					quakesHelperMethods.usage(quakes.class.getSimpleName(), args[i]);
+				}
+				
+			} else if (option.startsWith("--to=")) {
+				
+				filter.endTime = parseFilterDate(value);
+				if (filter.endTime == null) {
+					System.err.println("Error: Invalid date \"" + value + "\" for --to (expected " + FILTER_DATE_FORMAT + ").");
+					quakesHelperMethods.usage(quakes.class.getSimpleName(), args[i]);
+				} else {
+					// Include the whole day
+					filter.endTime += TimeUnit.DAYS.toMillis(1);
+				}
+				
+			} else {
+				System.err.println("Error: Invalid option.");
+				quakesHelperMethods.usage(quakes.class.getSimpleName(), args[i]);
+			}
+		}
+		
+		// Would silently produce an empty report
+		if (filter.startTime != null && filter.endTime != null && filter.startTime >= filter.endTime) {
+			System.err.println("Error: --from is later than --to.");
+			quakesHelperMethods.usage(quakes.class.getSimpleName(), Arrays.toString(args));
+		}
+		
+		return filter;
+	}
+
 	/**
 	 * Validate input arguments.
 	 * 
@@ -160,7 +452,7 @@ public class quakes {
 		
 		String firstArg = null;
 		
-		if (args.length == 1) {
+		if (args.length >= 1) {
 			
 			// at-least need 3 characters to proceed
 			// -- 2 characters
@@ -180,12 +472,13 @@ public class quakes {
 					}
 				}
 			}
-		} else {
 			
-			if (args.length == 0)
-				quakesHelperMethods.usage(className, "");
-			else
-				quakesHelperMethods.usage(className, Arrays.toString(args));				
+			// Not of the form --<report>
+			if (firstArg == null)
+				quakesHelperMethods.usage(className, args[0]);
+			
+		} else {
+			quakesHelperMethods.usage(className, "");
 		}
 
 		return firstArg;
@@ -201,6 +494,7 @@ public class quakes {
 		buildUpStatesAndTerritoriesDataStructures();
 
 		String firstArg = validateInputArguments(args);
+		EarthquakeFilter filter = buildEarthquakeFilter(firstArg, args);
 
 		Comparator<EarthquakeDataNode> EarthquakeDataComparator = new EarthquakeDataNodeComparator();
 
@@ -229,157 +523,125 @@ public class quakes {
 		//PriorityQueue<EarthquakeDataNode> sortedEarthquakeDataPerState = new PriorityQueue<EarthquakeDataNode>(TOP_STRONGEST_EARTHQUAKES_PER_STATE, EarthquakeDataComparator);
 
 		// Get earthquake data (API response)
-		String earthquakesData = quakesHelperMethods.getEarthquakesDataFromUSGS(USGS_EARTHQUAKE_DATA_API);
-		if (!earthquakesData.isEmpty()) {
+		EarthquakesDataResponse<JSONObject> earthquakesData = quakesHelperMethods.getEarthquakesDataFromUSGS(System.getProperty("quakes.usgs.url", USGS_EARTHQUAKE_DATA_API), quakes::parseEarthquakesData);
+
+		if (earthquakesData != null) {
+
+			JSONObject mainJSONObj			= earthquakesData.data;
+
+			int getTotalDataCount			= mainJSONObj.getJSONObject("metadata").getInt("count");
+			JSONArray readingsJSONArray		= mainJSONObj.getJSONArray("features");
 
-			JSONObject mainJSONObj = null;
-			JSONObject metadataObj = null;
-			int getStatus = 0;
-			int getTotalDataCount = 0;
+			String asOf = getEarthquakesDataAsOf(earthquakesData);
+
+			// Loop through the earthquake data
+			JSONObject reading		= null;
+			JSONObject properties	= null;
 			
-			try {
-				// Convert the string to a JSON object & parse
-				mainJSONObj 		= new JSONObject(earthquakesData);
-				metadataObj			= mainJSONObj.getJSONObject("metadata");
-				getStatus			= metadataObj.getInt("status");
-				getTotalDataCount	= metadataObj.getInt("count");
-
-			} catch (JSONException e) {
-					e.printStackTrace();
-			}
+			for (int i = 0; i < getTotalDataCount; i++) {
 
-			// Verify the API status code
-			if (getStatus == 200) {
+				reading		= readingsJSONArray.getJSONObject(i);
+				properties	= reading.getJSONObject("properties");
 
-				JSONArray readingsJSONArray = null;
-				try {
-					readingsJSONArray = mainJSONObj.getJSONArray("features");					
-				} catch (JSONException e) {
-					e.printStackTrace();
-				}
+				// Focus only on earthquake data
+				if (!filter.acceptsType(properties.optString("type")))
+					continue;
 
-				// Loop through the earthquake data
-				JSONObject reading		= null;
-				JSONObject properties	= null;
-				
-				for (int i = 0; i < getTotalDataCount; i++) {
-
-					reading		= readingsJSONArray.getJSONObject(i);
-					properties	= reading.getJSONObject("properties");
-
-					// Focus only on earthquake data
-					if (properties.getString("type").equals("earthquake")) {
-
-						/*
-						 * title: M ? - 6km W of Cobb, CA mag: null
-						 * 
-						 * Data did not seem to be clean. Hence opted to fetch
-						 * the magnitude from the title string.
-						 * 
-						 * title: M 0.5 - 9km NE of Aguanga, CA Parse the title
-						 * to get the magnitude value
-						 */
-
-						StringBuilder magStr = new StringBuilder();
-						magStr.append(properties.getString("title").split(" - ")[0].split(" ")[1]);
-
-						// Ignore if mag value is null or if the mag value in title is ?
-						if (!magStr.toString().equals("?")) {
-							float magFloat = Float.parseFloat(magStr.toString());
-
-							/*
-							 * Invalid title: M 4.5 - Federated States of Micronesia region 
-							 * Proceed ONLY if there is a state component in the title.
-							 */
-							if (properties.getString("title").split(", ").length == 2) {
-
-								StringBuilder stateStr = new StringBuilder();
-								stateStr.append(properties.getString("title").split(", ")[1].toLowerCase());
-								
-								// Validate if the data is indeed in the USA
-								if (isEarthquakeWithinUSA(stateStr.toString())) {
-
-									StringBuilder stateStrUpdated = new StringBuilder();
-									stateStrUpdated = stateStrUpdated.append(convertStateCode2NameIfNeeded(stateStr.toString()).toLowerCase());
-
-									// Build earthquake data object
-									EarthquakeDataNode eqData	= new EarthquakeDataNode();
-									eqData.magnitude			= magFloat;
-									eqData.magnitudeType		= properties.getString("magType");
-									eqData.time					= properties.getLong("time");
-									eqData.summaryWithLocation	= properties.getString("title");
-
-									if (firstArg.equalsIgnoreCase("top5")) {
-										
-										/*
-										 * Overall top 5 earthquakes in USA
-										 * Keep track of number of earthquakes in each state.
-										 */
-										if (earthquakeCountPerState.containsKey(stateStrUpdated.toString())) {
-											earthquakeCountPerState.put(stateStrUpdated.toString(), earthquakeCountPerState.get(stateStrUpdated.toString()) + 1);
-										} else {
-											earthquakeCountPerState.put(stateStrUpdated.toString(), 1);
-										}
-										
-									} else if (firstArg.equalsIgnoreCase("statestop5")) {
-										
-										/*
-										 * Overall top 5 earthquakes in USA
-										 * Create the priority queue for a given state
-										 */
-										if (!earthquakeDataPerState.containsKey(stateStr.toString())) {
-											earthquakeDataPerState.put(stateStr.toString(), new PriorityQueue<EarthquakeDataNode>(TOP_STRONGEST_EARTHQUAKES_PER_STATE, EarthquakeDataComparator));
-										}
-
-										// Populate the priority queue
-										PriorityQueue<EarthquakeDataNode> tempPQueue;
-										tempPQueue = (PriorityQueue<EarthquakeDataNode>) earthquakeDataPerState.get(stateStr.toString());
-										tempPQueue.add(eqData);										
-										
-									} else {
-										
-										// Collecting data for a particular state
-										firstArg = convertStateCode2NameIfNeeded(firstArg);
-										if (firstArg.equalsIgnoreCase(stateStrUpdated.toString()))
-											sortedStateEarthquakeData.add(eqData);
-									}
-								}
-							}
-						}
-					}
-				}
+				String title = properties.getString("title");
+
+				// Cheapest and most selective for a single state report
+				String stateStr = getStateFromTitle(title);
+				if (!filter.acceptsState(stateStr))
+					continue;
+
+				// Ignore if mag value is null or if the mag value in title is ?
+				Float magFloat = getMagnitudeFromTitle(title);
+				if (!filter.acceptsMagnitude(magFloat))
+					continue;
+
+				// Time is only checked when --from/--to is given
+				long time = properties.getLong("time");
+				if (filter.hasTimeRange() && !filter.acceptsTime(time))
+					continue;
+
+				filter.accepted++;
+
+				// Build earthquake data object
+				EarthquakeDataNode eqData	= new EarthquakeDataNode();
+				eqData.magnitude			= magFloat;
+				eqData.magnitudeType		= properties.getString("magType");
+				eqData.time					= time;
+				eqData.summaryWithLocation	= title;
 
 				if (firstArg.equalsIgnoreCase("top5")) {
 					
-					//Do this ("putAll") ONLY if the argument is "top5"
-					earthquakeMagnitudeSortedMap.putAll(earthquakeCountPerState);
+					/*
+					 * Overall top 5 earthquakes in USA
+					 * Keep track of number of earthquakes in each state.
+					 */
+					if (earthquakeCountPerState.containsKey(stateStr)) {
+						earthquakeCountPerState.put(stateStr, earthquakeCountPerState.get(stateStr) + 1);
+					} else {
+						earthquakeCountPerState.put(stateStr, 1);
+					}
 					
-					System.out.println("A list of the top 5 US states by number of earthquakes, highest to lowest. (As of " + quakesHelperMethods.getCurrentDataTime() + ")");
-					quakesHelperMethods.pollEarthquakeDataFromTreeMap(earthquakeMagnitudeSortedMap, TOP_US_STATES_NUMBER_OF_EARTHQUAKES);
-				
 				} else if (firstArg.equalsIgnoreCase("statestop5")) {
-
-					System.out.println("A list of the top 5 earthquakes in each state, highest to lowest. (As of " + quakesHelperMethods.getCurrentDataTime() + ")");
-					Set<String> keys = earthquakeDataPerState.keySet();
-					PriorityQueue<EarthquakeDataNode> sortedEarthquakeDataPerState = null;
 					
-					for (String state : keys) {
-						sortedEarthquakeDataPerState = (PriorityQueue<EarthquakeDataNode>) earthquakeDataPerState.get(state);
-						System.out.println("State: " + quakesHelperMethods.capitalizeFully(state) + " (Number of earthquake(s) reported : "	+ sortedEarthquakeDataPerState.size() + ")");
-						quakesHelperMethods.pollEarthquakeDataFromPriorityQueue(sortedEarthquakeDataPerState, TOP_STRONGEST_EARTHQUAKES_PER_STATE);
+					/*
+					 * Overall top 5 earthquakes in USA
+					 * Create the priority queue for a given state
+					 */
+					if (!earthquakeDataPerState.containsKey(stateStr)) {
+						earthquakeDataPerState.put(stateStr, new PriorityQueue<EarthquakeDataNode>(TOP_STRONGEST_EARTHQUAKES_PER_STATE, EarthquakeDataComparator));
 					}
+
+					// Populate the priority queue
+					PriorityQueue<EarthquakeDataNode> tempPQueue;
+					tempPQueue = (PriorityQueue<EarthquakeDataNode>) earthquakeDataPerState.get(stateStr);
+					tempPQueue.add(eqData);										
 					
 				} else {
 					
-					System.out.println("A list of the top 25 strongest earthquakes in " + quakesHelperMethods.capitalizeFully(firstArg) + ", highest to lowest. (As of " + quakesHelperMethods.getCurrentDataTime() + ")");
-					System.out.println("Earthquakes reported for state: " + quakesHelperMethods.capitalizeFully(firstArg) + " (Number of earthquake(s) reported: " + sortedStateEarthquakeData.size() + ")");
-					quakesHelperMethods.pollEarthquakeDataFromPriorityQueue(sortedStateEarthquakeData, TOP_STRONGEST_EARTHQUAKES_IN_STATE);
+					// Collecting data for a particular state (already narrowed down by the filter)
+					sortedStateEarthquakeData.add(eqData);
 				}
+			}
+
+			// Report names the state in full (--ca => California)
+			firstArg = convertStateCode2NameIfNeeded(firstArg);
+
+			if (firstArg.equalsIgnoreCase("top5")) {
+				
+				//Do this ("putAll") ONLY if the argument is "top5"
+				earthquakeMagnitudeSortedMap.putAll(earthquakeCountPerState);
+				
+				System.out.println("A list of the top 5 US states by number of earthquakes, highest to lowest. (As of " + asOf + ")");
+				quakesHelperMethods.pollEarthquakeDataFromTreeMap(earthquakeMagnitudeSortedMap, TOP_US_STATES_NUMBER_OF_EARTHQUAKES);
+			
+			} else if (firstArg.equalsIgnoreCase("statestop5")) {
 
+				System.out.println("A list of the top 5 earthquakes in each state, highest to lowest. (As of " + asOf + ")");
+				Set<String> keys = earthquakeDataPerState.keySet();
+				PriorityQueue<EarthquakeDataNode> sortedEarthquakeDataPerState = null;
+				
+				for (String state : keys) {
+					sortedEarthquakeDataPerState = (PriorityQueue<EarthquakeDataNode>) earthquakeDataPerState.get(state);
+					System.out.println("State: " + quakesHelperMethods.capitalizeFully(state) + " (Number of earthquake(s) reported : "	+ sortedEarthquakeDataPerState.size() + ")");
+					quakesHelperMethods.pollEarthquakeDataFromPriorityQueue(sortedEarthquakeDataPerState, TOP_STRONGEST_EARTHQUAKES_PER_STATE);
+				}
+				
 			} else {
-				System.err.println("Error: Unable to fetch earthquake data.");
-				System.exit(-1);
+				
+				System.out.println("A list of the top 25 strongest earthquakes in " + quakesHelperMethods.capitalizeFully(firstArg) + ", highest to lowest. (As of " + asOf + ")");
+				System.out.println("Earthquakes reported for state: " + quakesHelperMethods.capitalizeFully(firstArg) + " (Number of earthquake(s) reported: " + sortedStateEarthquakeData.size() + ")");
+				quakesHelperMethods.pollEarthquakeDataFromPriorityQueue(sortedStateEarthquakeData, TOP_STRONGEST_EARTHQUAKES_IN_STATE);
 			}
+
+			System.err.println(filter);
+
+		} else {
+			System.err.println("Error: Unable to fetch earthquake data.");
+			System.exit(-1);
 		}
 	}
 }
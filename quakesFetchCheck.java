@@ -0,0 +1,300 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import java.util.Map;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpExchange;
+
+import org.json.JSONObject;
+
+/**
+ * Checks the USGS fetch (timeouts, retries, circuit breaker, last good data)
+ * against a local fault-injecting HTTP stub.
+ *
+ * Uses quakes.parseEarthquakesData, so org.json (see pom.xml) must be on the classpath:
+ *	javac -cp json-20180813.jar *.java
+ *	java -cp json-20180813.jar:. quakesFetchCheck
+ * Exit code 0 if all the checks pass.
+ *
+ * @author ashekhar
+ */
+public class quakesFetchCheck {
+
+	final private static long FETCH_BUDGET_MS	= 2500;
+	final private static int MAX_FETCH_ATTEMPTS	= 3;
+
+	final private static long GENERATED			= 1500000000000L;
+	final private static String VALID_DATA		= "{\"metadata\":{\"generated\":" + GENERATED + ",\"status\":200,\"count\":0},\"features\":[]}";
+	final private static String INVALID_DATA	= "{\"metadata\":{}}";
+	final private static String MALFORMED_DATA	= "{\"metadata\":";
+	final private static String STATUS_500_DATA	= "{\"metadata\":{\"generated\":" + GENERATED + ",\"status\":500,\"count\":0},\"features\":[]}";
+
+	private static Map<String, AtomicInteger> hits = new ConcurrentHashMap<String, AtomicInteger>();
+	private static List<File> cacheDirectories = new ArrayList<File>();
+	private static String baseUrl;
+	private static int failures = 0;
+
+	/**
+	 * Fault injected by the stub, picked by the request path.
+	 *
+	 * @param exchange
+	 * @throws IOException
+	 */
+	private static void handle(HttpExchange exchange) throws IOException {
+
+		String path = exchange.getRequestURI().getPath();
+		int hit = hits.computeIfAbsent(path, k -> new AtomicInteger()).incrementAndGet();
+
+		try {
+			switch (path) {
+			case "/ok":
+				respond(exchange, 200, "application/json", VALID_DATA);
+				break;
+			case "/503":
+				respond(exchange, 503, "text/plain", "Service Unavailable");
+				break;
+			case "/429-then-ok":
+				if (hit == 1)
+					respond(exchange, 429, "text/plain", "Too Many Requests");
+				else
+					respond(exchange, 200, "application/json", VALID_DATA);
+				break;
+			case "/404":
+				respond(exchange, 404, "text/plain", "Not Found");
+				break;
+			case "/html":
+				respond(exchange, 200, "text/html", "<html>Maintenance</html>");
+				break;
+			case "/invalid":
+				respond(exchange, 200, "application/json", INVALID_DATA);
+				break;
+			case "/malformed":
+				respond(exchange, 200, "application/json", MALFORMED_DATA);
+				break;
+			case "/status-500":
+				respond(exchange, 200, "application/json", STATUS_500_DATA);
+				break;
+			case "/hang":
+				// Never answers
+				Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+				break;
+			case "/trickle":
+				// One byte at a time, each well within the read timeout
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, 0);
+				OutputStream out = exchange.getResponseBody();
+				while (true) {
+					out.write(' ');
+					out.flush();
+					Thread.sleep(100);
+				}
+			default:
+				respond(exchange, 500, "text/plain", "Unknown stub");
+			}
+		} catch (InterruptedException | IOException e) {
+			// Client went away
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, bytes.length);
+		exchange.getResponseBody().write(bytes);
+	}
+
+	/**
+	 * Fresh cache directory, optionally seeded with last good data from the stub.
+	 *
+	 * @param seed
+	 * @return dir
+	 * @throws IOException
+	 */
+	private static File useNewCacheDirectory(boolean seed) throws IOException {
+
+		File dir = Files.createTempDirectory("quakesFetchCheck").toFile();
+		System.setProperty("quakes.cache.dir", dir.getPath());
+		cacheDirectories.add(dir);
+
+		if (seed && fetch("/ok") == null) {
+			System.err.println("Error: Unable to seed the last good data.");
+			System.exit(-1);
+		}
+		hits.clear();
+
+		return dir;
+	}
+
+	/**
+	 * Delete the cache directories created by the checks.
+	 */
+	private static void deleteCacheDirectories() {
+		
+		for (File dir : cacheDirectories) {
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File file : files)
+					file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private static EarthquakesDataResponse<JSONObject> fetch(String path) {
+		return quakesHelperMethods.getEarthquakesDataFromUSGS(baseUrl + path, quakes::parseEarthquakesData);
+	}
+
+	private static void check(String name, boolean passed) {
+
+		System.out.println((passed ? "PASS: " : "FAIL: ") + name);
+		if (!passed)
+			failures++;
+	}
+
+	private static int hitsOf(String path) {
+		return hits.containsKey(path) ? hits.get(path).get() : 0;
+	}
+
+	private static boolean isValidData(JSONObject data) {
+		return data != null && data.getJSONObject("metadata").optLong("generated", 0) == GENERATED;
+	}
+
+	private static boolean isFresh(EarthquakesDataResponse<JSONObject> response) {
+		return response != null && !response.isLastGood && isValidData(response.data);
+	}
+
+	private static boolean isLastGood(EarthquakesDataResponse<JSONObject> response) {
+		return response != null && response.isLastGood && isValidData(response.data);
+	}
+
+	/**
+	 * Replace the last good data in a cache directory.
+	 * 
+	 * @param dir
+	 * @param content
+	 * @throws IOException
+	 */
+	private static void overwriteLastGoodData(File dir, String content) throws IOException {
+		
+		for (File file : dir.listFiles((d, name) -> name.endsWith(".geojson")))
+			Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Main program
+	 *
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+
+		// Must be set before quakesHelperMethods is loaded
+		System.setProperty("quakes.connect.timeout.ms", "500");
+		System.setProperty("quakes.read.timeout.ms", "500");
+		System.setProperty("quakes.attempt.deadline.ms", "1000");
+		System.setProperty("quakes.fetch.budget.ms", String.valueOf(FETCH_BUDGET_MS));
+		System.setProperty("quakes.fetch.attempts", String.valueOf(MAX_FETCH_ATTEMPTS));
+		System.setProperty("quakes.backoff.initial.ms", "50");
+		System.setProperty("quakes.backoff.max.ms", "200");
+		System.setProperty("quakes.breaker.threshold", String.valueOf(MAX_FETCH_ATTEMPTS));
+		System.setProperty("quakes.breaker.open.ms", "60000");
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", quakesFetchCheck::handle);
+		server.setExecutor(Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			return t;
+		}));
+		server.start();
+		baseUrl = "http://localhost:" + server.getAddress().getPort();
+
+		EarthquakesDataResponse<JSONObject> response;
+		File dir;
+		long start;
+
+		useNewCacheDirectory(false);
+		response = fetch("/ok");
+		check("200: fresh data", isFresh(response) && hitsOf("/ok") == 1);
+		check("Header: fresh data is as of now", !quakes.getEarthquakesDataAsOf(response).contains("last good data"));
+
+		useNewCacheDirectory(false);
+		response = fetch("/429-then-ok");
+		check("429: retried, then fresh data", isFresh(response) && hitsOf("/429-then-ok") == 2);
+
+		useNewCacheDirectory(true);
+		response = fetch("/503");
+		check("503: every attempt used, then last good data", isLastGood(response) && hitsOf("/503") == MAX_FETCH_ATTEMPTS);
+		check("Header: last good data is as of when USGS generated it", response != null
+				&& quakes.getEarthquakesDataAsOf(response).equals(quakesHelperMethods.convertLong2Time(GENERATED) + ", last good data: USGS unavailable"));
+
+		// Same cache directory: the breaker opened on the failures above
+		response = fetch("/503");
+		check("Breaker open: USGS not contacted, last good data", isLastGood(response) && hitsOf("/503") == MAX_FETCH_ATTEMPTS);
+
+		useNewCacheDirectory(true);
+		response = fetch("/404");
+		check("404: not retried, last good data", isLastGood(response) && hitsOf("/404") == 1);
+
+		useNewCacheDirectory(true);
+		response = fetch("/html");
+		check("Not JSON: not retried, last good data", isLastGood(response) && hitsOf("/html") == 1);
+
+		useNewCacheDirectory(true);
+		response = fetch("/invalid");
+		check("Invalid data: not retried, last good data", isLastGood(response) && hitsOf("/invalid") == 1);
+
+		useNewCacheDirectory(true);
+		response = fetch("/malformed");
+		check("Malformed JSON: not retried, last good data", isLastGood(response) && hitsOf("/malformed") == 1);
+
+		useNewCacheDirectory(true);
+		response = fetch("/status-500");
+		check("Status 500 in metadata: not retried, last good data", isLastGood(response) && hitsOf("/status-500") == 1);
+
+		dir = useNewCacheDirectory(true);
+		overwriteLastGoodData(dir, MALFORMED_DATA);
+		response = fetch("/404");
+		check("Malformed last good data: refused", response == null);
+
+		useNewCacheDirectory(true);
+		start = System.currentTimeMillis();
+		response = fetch("/hang");
+		check("Hang: within the time budget, last good data", isLastGood(response)
+				&& System.currentTimeMillis() - start < FETCH_BUDGET_MS + 1000);
+
+		useNewCacheDirectory(true);
+		start = System.currentTimeMillis();
+		response = fetch("/trickle");
+		check("Trickle: cut off at the deadline, last good data", isLastGood(response)
+				&& System.currentTimeMillis() - start < FETCH_BUDGET_MS + 1000);
+
+		dir = useNewCacheDirectory(true);
+		for (File file : dir.listFiles((d, name) -> name.endsWith(".geojson")))
+			file.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2));
+		response = fetch("/503");
+		check("Stale last good data: refused", response == null);
+
+		server.stop(0);
+		deleteCacheDirectories();
+
+		System.out.println(failures == 0 ? "All checks passed." : failures + " check(s) failed.");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+}
@@ -1,24 +1,74 @@
+import java.io.File;
 import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.InputStreamReader;
 
 import java.net.URL;
-import java.net.URLConnection;
+import java.net.SocketTimeoutException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.charset.StandardCharsets;
+
 import java.text.DateFormat;
 import java.text.Format;
 import java.text.SimpleDateFormat;
 
 import java.util.Map;
 import java.util.Date;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Properties;
 import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * USGS responded, but retrying will not help (HTTP 4xx, not JSON, invalid data).
+ * 
+ * @author ashekhar
+ */
+class FetchNotRetryableException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	FetchNotRetryableException(String message) {
+		super(message);
+	}
+}
 
 public class quakesHelperMethods {
 
 	final private static String TIMESTAMP_FORMAT = "EEE MMM dd hh:mm:ss aa zzz yyyy";
 
+	// Override with -D<property>=<value>, e.g. to run against a local stub
+	final private static int CONNECT_TIMEOUT_MS 				= Integer.getInteger("quakes.connect.timeout.ms", 5000);
+	final private static int READ_TIMEOUT_MS 					= Integer.getInteger("quakes.read.timeout.ms", 10000);
+	final private static long ATTEMPT_DEADLINE_MS 				= Long.getLong("quakes.attempt.deadline.ms", 20000);
+	final private static long FETCH_BUDGET_MS 					= Long.getLong("quakes.fetch.budget.ms", 30000);
+	final private static int MAX_FETCH_ATTEMPTS 				= Integer.getInteger("quakes.fetch.attempts", 4);
+	final private static long INITIAL_BACKOFF_MS 				= Long.getLong("quakes.backoff.initial.ms", 500);
+	final private static long MAX_BACKOFF_MS 					= Long.getLong("quakes.backoff.max.ms", 4000);
+	final private static int CIRCUIT_BREAKER_THRESHOLD 			= Integer.getInteger("quakes.breaker.threshold", 5);
+	final private static long CIRCUIT_BREAKER_OPEN_MS 			= Long.getLong("quakes.breaker.open.ms", 5 * 60 * 1000);
+	final private static long LAST_GOOD_DATA_MAX_AGE_HOURS 		= Long.getLong("quakes.fallback.max.age.hours", 24);
+	
+	final private static String LAST_GOOD_DATA_FILE 			= "quakes_last_good.geojson";
+	final private static String CIRCUIT_BREAKER_STATE_FILE 		= "quakes_circuit_breaker.properties";
+
+	// Cuts off an attempt that is still running at its deadline
+	final private static Timer FETCH_DEADLINE_TIMER 			= new Timer("quakes-fetch-deadline", true);
+
 	/**
 	 * Get current date and time
 	 * 
@@ -56,11 +106,13 @@ public class quakesHelperMethods {
 	static void usage(String className, String args0) {
 		
 		System.err.println("Argument entered: " + args0);
-		System.err.println("Usage: java " + className + " --top5 | --statestop5 | --<Name of state | State initials>\n");
+		System.err.println("Usage: java " + className + " --top5 | --statestop5 | --<Name of state | State initials> [--minmag=<magnitude>] [--from=<yyyy-MM-dd>] [--to=<yyyy-MM-dd>]\n");
 		System.out.println("--top5: A list of the top 5 US states by number of earthquakes, highest to lowest");
 		System.out.println("--statestop5: A list of the top 25 strongest earthquakes in each state of occurence, highest to lowest");
 		System.out.println("--<Name of state | State initials>: A list of the top 5 strongest earthquakes in a specific state, highest to lowest");
 		System.out.println("\tEx: --california | --California | --CA | --ca\n");
+		System.out.println("--minmag=<magnitude>: Only earthquakes of at least this magnitude");
+		System.out.println("--from=<yyyy-MM-dd> --to=<yyyy-MM-dd>: Only earthquakes within these days (UTC, inclusive)\n");
 		System.out.println("For the following states/territories, please use the state code.");
 		System.out.println("States ...");
 		System.out.println("\tDistrict of Columbia (DC)");
@@ -140,100 +192,346 @@ public class quakesHelperMethods {
 	}
 
 	/**
-	 * Check if USGS site is responding.
+	 * Circuit breaker state is kept on disk so that back to back runs do not keep
+	 * hammering the USGS site while it is down.
 	 * 
-	 * @param urlStr
-	 * @return
+	 * @return {consecutiveFailures, openUntil} ({0, 0} if there is no state yet)
 	 */
-	private static boolean isUSGSSiteResponding(String urlStr) {
-
-	    try {
-	        
-	    	URL url = new URL(urlStr);
-	        URLConnection conn = url.openConnection();
-	        conn.connect();
-	        conn.getInputStream().close();
-	        
-	    } catch (MalformedURLException e) {
-	    	e.printStackTrace();
-	    } catch (IOException e) {
-	        return false;
-	    }
-		
-	    return true;
+	private static long[] loadCircuitBreakerState() {
+		
+		Properties state = new Properties();
+		File stateFile = new File(getCacheDirectory(), CIRCUIT_BREAKER_STATE_FILE);
+		
+		if (stateFile.isFile()) {
+			try (InputStream in = new FileInputStream(stateFile)) {
+				state.load(in);
+				
+				return new long[] {
+					Long.parseLong(state.getProperty("consecutiveFailures", "0").trim()),
+					Long.parseLong(state.getProperty("openUntil", "0").trim())
+				};
+				
+			} catch (IOException | IllegalArgumentException e) {
+				// Corrupt/unreadable state (incl. NumberFormatException): treat the circuit as closed
+				System.err.println("Warning: Ignoring invalid circuit breaker state (" + e.getMessage() + ")");
+			}
+		}
+		
+		return new long[] {0, 0};
 	}
 	
 	/**
-	 * Fetch the earthquake data by making the API call.
+	 * Persist the circuit breaker state.
+	 * 
+	 * @param consecutiveFailures
+	 * @param openUntil
+	 */
+	private static void saveCircuitBreakerState(long consecutiveFailures, long openUntil) {
+		
+		Properties state = new Properties();
+		state.setProperty("consecutiveFailures", String.valueOf(consecutiveFailures));
+		state.setProperty("openUntil", String.valueOf(openUntil));
+		
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			state.store(out, "quakes circuit breaker");
+			writeCacheFile(CIRCUIT_BREAKER_STATE_FILE, out.toByteArray());
+		} catch (IOException e) {
+			System.err.println("Warning: Unable to save circuit breaker state (" + e.getMessage() + ")");
+		}
+	}
+	
+	/**
+	 * Directory holding the last good data and the circuit breaker state.
+	 * Per user (not the shared temp directory) so that other users can neither
+	 * redirect the writes nor plant data. Override with -Dquakes.cache.dir=<dir>
 	 * 
-	 * @param urlStr
 	 * @return
 	 */
-	public static String getEarthquakesDataFromUSGS(String urlStr) {
-
-		if (!isUSGSSiteResponding("https://earthquake.usgs.gov")) {
-			System.err.println("Error: USGS website is not responding/not reachable.");
-			System.exit(-1);
+	private static File getCacheDirectory() {
+		
+		Path dir = Paths.get(System.getProperty("quakes.cache.dir", System.getProperty("user.home") + File.separator + ".cache" + File.separator + "quakes"));
+		
+		try {
+			if (!Files.isDirectory(dir)) {
+				if (dir.getFileSystem().supportedFileAttributeViews().contains("posix"))
+					Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+				else
+					Files.createDirectories(dir);
+			}
+		} catch (IOException e) {
+			System.err.println("Warning: Unable to create " + dir + " (" + e.getMessage() + ")");
 		}
 		
-		System.out.println("Fetching earthquake data from USGS (https://earthquake.usgs.gov) ...");
+		return dir.toFile();
+	}
+	
+	/**
+	 * Replace a file in the cache directory.
+	 * Written to a new temporary file first so that a crash never leaves a partial copy behind.
+	 * 
+	 * @param fileName
+	 * @param content
+	 * @throws IOException
+	 */
+	private static void writeCacheFile(String fileName, byte[] content) throws IOException {
 		
-		StringBuilder result = new StringBuilder();
-		URL url = null;
+		Path dir = getCacheDirectory().toPath();
+		Path tmp = Files.createTempFile(dir, fileName, ".tmp");
 		
 		try {
-			url = new URL(urlStr);
-		} catch (MalformedURLException e) {
-			e.printStackTrace();
+			Files.write(tmp, content);
+			Files.move(tmp, dir.resolve(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+	
+	/**
+	 * Save the last successfully parsed earthquake data.
+	 * 
+	 * @param earthquakesData
+	 */
+	private static void saveLastGoodEarthquakesData(String earthquakesData) {
+		
+		try {
+			writeCacheFile(LAST_GOOD_DATA_FILE, earthquakesData.getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			System.err.println("Warning: Unable to save earthquake data (" + e.getMessage() + ")");
+		}
+	}
+	
+	/**
+	 * Load the last successfully parsed earthquake data.
+	 * 
+	 * @param parser returns null if the data is invalid
+	 * @return response or null if there is no valid last good data or it is too old
+	 */
+	private static <T> EarthquakesDataResponse<T> loadLastGoodEarthquakesData(Function<String, T> parser) {
+		
+		File lastGood = new File(getCacheDirectory(), LAST_GOOD_DATA_FILE);
+		
+		if (!lastGood.isFile()) {
+			System.err.println("Error: No previously fetched earthquake data to fall back to.");
+			return null;
+		}
+		
+		// Stale data would be presented as the current state of affairs
+		if (System.currentTimeMillis() - lastGood.lastModified() > TimeUnit.HOURS.toMillis(LAST_GOOD_DATA_MAX_AGE_HOURS)) {
+			System.err.println("Error: Previously fetched earthquake data (" + convertLong2Time(lastGood.lastModified())
+					+ ") is older than " + LAST_GOOD_DATA_MAX_AGE_HOURS + " hour(s).");
+			return null;
 		}
-
-		HttpURLConnection conn = null;
 		
 		try {
-			conn = (HttpURLConnection) url.openConnection();
+			EarthquakesDataResponse<T> response = new EarthquakesDataResponse<T>();
+			response.fetchedAt	= lastGood.lastModified();
+			response.data		= parser.apply(new String(Files.readAllBytes(lastGood.toPath()), StandardCharsets.UTF_8));
+			response.isLastGood	= true;
+			
+			if (response.data == null) {
+				System.err.println("Error: Previously fetched earthquake data is invalid.");
+				return null;
+			}
+			
+			System.err.println("Warning: Using earthquake data fetched on " + convertLong2Time(response.fetchedAt));
+			return response;
+			
+		} catch (IOException e) {
+			System.err.println("Error: Unable to read previously fetched earthquake data (" + e.getMessage() + ")");
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Exponential backoff with full jitter: a random delay in [0, min(max, initial * 2^attempt)).
+	 * 
+	 * @param attempt (0 based)
+	 * @return delay in milliseconds
+	 */
+	static long getBackoffDelay(int attempt) {
+		
+		long ceiling = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(attempt, 20));
+		
+		return ceiling > 0 ? ThreadLocalRandom.current().nextLong(ceiling) : 0;
+	}
+	
+	/**
+	 * Make a single API call.
+	 * 
+	 * The read timeout only applies to each socket read, so an upstream trickling data
+	 * could keep the attempt alive forever. The connection is closed at the deadline.
+	 * 
+	 * @param url
+	 * @param deadline epoch millis
+	 * @return earthquakesData
+	 * @throws IOException on timeouts, connection failures and retryable HTTP status codes
+	 * @throws FetchNotRetryableException if the response can never succeed
+	 */
+	private static String fetchEarthquakesDataOnce(URL url, long deadline) throws IOException, FetchNotRetryableException {
+		
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0)
+			throw new SocketTimeoutException("Deadline exceeded");
+		
+		StringBuilder result = new StringBuilder();
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		
+		AtomicBoolean deadlineExceeded = new AtomicBoolean(false);
+		TimerTask closeAtDeadline = new TimerTask() {
+			@Override
+			public void run() {
+				deadlineExceeded.set(true);
+				conn.disconnect();
+			}
+		};
+		FETCH_DEADLINE_TIMER.schedule(closeAtDeadline, remaining);
+		
+		try {
 			conn.setRequestMethod("GET");
+			conn.setConnectTimeout((int) Math.min(CONNECT_TIMEOUT_MS, remaining));
+			conn.setReadTimeout((int) Math.min(READ_TIMEOUT_MS, remaining));
 
 			// HTTP Status
-			if (conn.getResponseCode() == 200) {
+			int responseCode = conn.getResponseCode();
+			if (responseCode != 200) {
+				
+				// Server side errors and throttling are transient
+				if (responseCode >= 500 || responseCode == 429)
+					throw new IOException("HTTP " + responseCode);
 				
-				// Content Type is JSON
-				if (conn.getContentType().contains("json")) {
+				throw new FetchNotRetryableException("HTTP " + responseCode);
+			}
+				
+			// Content Type is JSON
+			if (conn.getContentType() == null || !conn.getContentType().contains("json"))
+				throw new FetchNotRetryableException("Content type is not of type \"application/json\"");
 					
-					BufferedReader rd = null;
-					rd = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-					String line;
+			try (BufferedReader rd = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+				String line;
+				
+				int lineCounter = 0;
+				// Display 1 "." for every 100 lines
+				while ((line = rd.readLine()) != null) {
+					if (deadlineExceeded.get())
+						throw new SocketTimeoutException("Deadline exceeded");
 					
-					int lineCounter = 0;
-					// Display 1 "." for every 100 lines
-					while ((line = rd.readLine()) != null) {
-						result.append(line);
-						lineCounter++;
-						
-						// "." to indicate progress.
-						if (lineCounter % 100 == 0)
-							System.out.print(".");
-					}
-
-					rd.close();
-
-					System.out.println("\n");
-					return result.toString();
+					result.append(line);
+					lineCounter++;
 					
-				} else {
-					System.err.println("Error: Content type is not of type \"application/json\"");
-					System.exit(-1);					
+					// "." to indicate progress.
+					if (lineCounter % 100 == 0)
+						System.out.print(".");
 				}
-				
-			} else {
-				System.err.println("Error: Fetching data from USGS.");
-				System.exit(-1);
 			}
+
+			System.out.println("\n");
+			return result.toString();
 			
 		} catch (IOException e) {
+			// Closed from the timer: report it as the timeout it is
+			if (deadlineExceeded.get() && !(e instanceof SocketTimeoutException))
+				throw new SocketTimeoutException("Deadline exceeded");
+			throw e;
+			
+		} finally {
+			closeAtDeadline.cancel();
+			conn.disconnect();
+		}
+	}
+	
+	/**
+	 * Fetch the earthquake data by making the API call.
+	 * 
+	 * Every attempt is bounded by connect/read timeouts and a deadline, and transient failures
+	 * are retried with exponential backoff within an overall time budget. Data that parses is saved as the last good data. Once the
+	 * circuit breaker is open, when all the attempts fail, or when the data does not parse,
+	 * the last good data is returned instead.
+	 * 
+	 * @param urlStr
+	 * @param parser returns null if the data is invalid
+	 * @return response or null if neither USGS nor the last good data is available
+	 */
+	public static <T> EarthquakesDataResponse<T> getEarthquakesDataFromUSGS(String urlStr, Function<String, T> parser) {
+
+		URL url = null;
+		
+		try {
+			url = new URL(urlStr);
+		} catch (MalformedURLException e) {
 			e.printStackTrace();
+			return loadLastGoodEarthquakesData(parser);
+		}
+
+		long[] breaker 				= loadCircuitBreakerState();
+		long consecutiveFailures 	= breaker[0];
+		long openUntil 				= breaker[1];
+
+		if (System.currentTimeMillis() < openUntil) {
+			System.err.println("Warning: USGS website failed recently, not retrying until " + convertLong2Time(openUntil) + ".");
+			return loadLastGoodEarthquakesData(parser);
 		}
 		
-		return null;
+		System.out.println("Fetching earthquake data from USGS (" + url.getProtocol() + "://" + url.getAuthority() + ") ...");
+		
+		long budgetDeadline = System.currentTimeMillis() + FETCH_BUDGET_MS;
+		
+		for (int attempt = 0; attempt < MAX_FETCH_ATTEMPTS; attempt++) {
+			
+			try {
+				long attemptDeadline = Math.min(System.currentTimeMillis() + ATTEMPT_DEADLINE_MS, budgetDeadline);
+				String earthquakesData = fetchEarthquakesDataOnce(url, attemptDeadline);
+				saveCircuitBreakerState(0, 0);
+				
+				EarthquakesDataResponse<T> response = new EarthquakesDataResponse<T>();
+				response.fetchedAt	= System.currentTimeMillis();
+				response.data		= parser.apply(earthquakesData);
+				
+				if (response.data == null)
+					throw new FetchNotRetryableException("Invalid earthquake data");
+				
+				// Keep a copy to fall back to when USGS is slow/unavailable
+				saveLastGoodEarthquakesData(earthquakesData);
+				return response;
+				
+			} catch (FetchNotRetryableException e) {
+				System.err.println("Error: Fetching data from USGS (" + e.getMessage() + ")");
+				break;
+				
+			} catch (IOException e) {
+				consecutiveFailures++;
+				System.err.println("Warning: Fetching data from USGS failed, attempt " + (attempt + 1) + " of " + MAX_FETCH_ATTEMPTS + " (" + e + ")");
+				
+				// Half open after the break: a single failure trips it again
+				if (consecutiveFailures >= CIRCUIT_BREAKER_THRESHOLD) {
+					saveCircuitBreakerState(consecutiveFailures, System.currentTimeMillis() + CIRCUIT_BREAKER_OPEN_MS);
+					System.err.println("Error: USGS website is not responding/not reachable.");
+					break;
+				}
+				
+				saveCircuitBreakerState(consecutiveFailures, 0);
+				
+				if (attempt + 1 < MAX_FETCH_ATTEMPTS) {
+					
+					// No point in backing off past the budget
+					long backoffDelay = getBackoffDelay(attempt);
+					if (System.currentTimeMillis() + backoffDelay >= budgetDeadline) {
+						System.err.println("Error: Time budget for fetching data from USGS used up.");
+						break;
+					}
+					
+					try {
+						Thread.sleep(backoffDelay);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+			}
+		}
+		
+		return loadLastGoodEarthquakesData(parser);
 	}
 	
 	// Decided to add this at the bottom of the class due to length of the data.